@@ -11,6 +11,7 @@ import android.bluetooth.BluetoothSocket;
 import android.content.Context;
 import android.os.Handler;
 import android.os.Message;
+import android.os.SystemClock;
 import android.util.Log;
 
 public class BluetoothService {
@@ -19,13 +20,15 @@ public class BluetoothService {
 	private static final boolean D = true;
 
 	// Name and UUID for the SDP record when creating server socket
-	private static final UUID ROSE_SERVICE_UUID = UUID.fromString("227600fc-217a-4766-83bb-49e596bb9e88");
+	public static final UUID ROSE_SERVICE_UUID = UUID.fromString("227600fc-217a-4766-83bb-49e596bb9e88");
 	
 	// Member fields
 	private final BluetoothAdapter adapter;
+	private final DeviceRegistry deviceRegistry;
 	private final Handler handler;
 	private ConnectThread connectThread;
 	private ConnectedThread connectedThread;
+	private long connectStartTime;
 	private int state;
 	
 	// State constants
@@ -39,6 +42,7 @@ public class BluetoothService {
 		
 		adapter = BluetoothAdapter.getDefaultAdapter();
 		state = STATE_NONE;
+		deviceRegistry = DeviceRegistry.getInstance(context);
 		this.handler = handler;
 	}
 	
@@ -75,12 +79,13 @@ public class BluetoothService {
 		if (connectedThread != null) { connectedThread.cancel(); connectedThread = null; }
 		
 		// Start a new connect thread
+		connectStartTime = SystemClock.elapsedRealtime();
 		connectThread = new ConnectThread(device);
 		connectThread.start();
 		setState(STATE_CONNECTING);
 	}
 	
-	public synchronized void connected(BluetoothSocket socket, BluetoothDevice device) {
+	public synchronized void connected(BluetoothSocket socket, BluetoothDevice device, int strategy) {
 		if (D) Log.d(TAG, "connected");
 		
 		// Cancel the thread that made the connection
@@ -93,6 +98,11 @@ public class BluetoothService {
 		connectedThread = new ConnectedThread(socket);
 		connectedThread.start();
 		
+		// Send the address of the connected device, the connect latency and the
+		// winning connection strategy back to the UI Activity
+		int latency = (int) (SystemClock.elapsedRealtime() - connectStartTime);
+		handler.obtainMessage(RoseInterfaceActivity.MESSAGE_DEVICE_ADDRESS, latency, strategy, device.getAddress()).sendToTarget();
+		
 		setState(STATE_CONNECTED);
 	}
 	
@@ -105,22 +115,24 @@ public class BluetoothService {
 		setState(STATE_NONE);
 	}
 	
-	public void write(byte[] out) {
+	public boolean write(byte[] out) {
 		// Temp holder for the thread
 		ConnectedThread r;
 		
 		// Get a synchronized copy of the ConnectedThread
 		synchronized (this) {
-			if (state != STATE_CONNECTED) return;
+			if (state != STATE_CONNECTED) return false;
 			r = connectedThread;
 		}
 		
 		// Perform the write
-		r.write(out);
+		return r.write(out);
 	}
 	
 	private void connectionFailed() {
 		Log.e(TAG, "Connection failed");
+		setState(STATE_NONE);
+		
 		Message message = handler.obtainMessage(RoseInterfaceActivity.MESSAGE_FAILURE);
 		handler.sendMessage(message);
 		
@@ -129,6 +141,8 @@ public class BluetoothService {
 	
 	private void connectionLost() {
 		Log.e(TAG, "Connection lost");
+		setState(STATE_NONE);
+		
 		Message message = handler.obtainMessage(RoseInterfaceActivity.MESSAGE_FAILURE);
 		handler.sendMessage(message);
 		
@@ -137,19 +151,11 @@ public class BluetoothService {
 	
 	private class ConnectThread extends Thread {
 		private final BluetoothDevice device;
-		private final BluetoothSocket socket;
+		private final ConnectionRacer racer;
 		
 		public ConnectThread(BluetoothDevice device) {
 			this.device = device;
-			BluetoothSocket tmp = null;
-			
-			try {
-				tmp = device.createRfcommSocketToServiceRecord(ROSE_SERVICE_UUID);
-			} catch (IOException e) {
-				Log.e(TAG, "create() failed", e);
-			}
-			
-			socket = tmp;
+			racer = new ConnectionRacer(deviceRegistry, device);
 		}
 		
 		public void run() {
@@ -159,34 +165,41 @@ public class BluetoothService {
 			// Cancel discovery because we don't need it
 			adapter.cancelDiscovery();
 			
-			// Make a connection to the socket
+			// Race the connection strategies, the racer closes the losing sockets
+			BluetoothSocket socket;
 			try {
-				socket.connect();
+				socket = racer.connect();
 			} catch (IOException e) {
-				// Close the socket
-				try {
-					socket.close();
-				} catch (IOException e2) {
-					Log.e(TAG, "unable to close() socket during connection failure", e2);
+				Log.e(TAG, "unable to connect()", e);
+				
+				// Only report the failure if we haven't been cancelled or replaced
+				synchronized(BluetoothService.this) {
+					if (connectThread != this) return;
 				}
 				connectionFailed();
 				return;
 			}
 			
-			// Reset the ConnectThread because we're done
+			// Reset the ConnectThread because we're done, unless we were
+			// cancelled or replaced while the connection was being made.  This
+			// all happens under one lock so a new connect() can't slip in between.
 			synchronized(BluetoothService.this) {
+				if (connectThread != this) {
+					try {
+						socket.close();
+					} catch (IOException e) {
+						Log.e(TAG, "unable to close() stale socket", e);
+					}
+					return;
+				}
 				connectThread = null;
+				
+				connected(socket, device, racer.getWinningStrategy());
 			}
-			
-			connected(socket, device);
 		}
 		
 		public void cancel() {
-			try {
-				socket.close();
-			} catch (IOException e) {
-				Log.e(TAG, "close() of connect socket failed", e);
-			}
+			racer.cancel();
 		}
 	}
 	
@@ -228,20 +241,26 @@ public class BluetoothService {
 					handler.obtainMessage(RoseInterfaceActivity.MESSAGE_READ, bytes, -1, buffer).sendToTarget();
 				} catch (IOException e) {
 					Log.e(TAG, "disconnected", e);
+					
+					// Only report the loss if we haven't been cancelled or replaced
+					synchronized(BluetoothService.this) {
+						if (connectedThread != this) break;
+					}
 					connectionLost();
-					BluetoothService.this.start();
 					break;
 				}
 			}
 		}
 		
-		public void write(byte[] buffer) {
+		public boolean write(byte[] buffer) {
 			try {
 				outputStream.write(buffer);
 				
 				handler.obtainMessage(RoseInterfaceActivity.MESSAGE_WRITE, -1, -1, buffer).sendToTarget();
+				return true;
 			} catch (IOException e) {
 				Log.e(TAG, "Exception during write", e);
+				return false;
 			}
 		}
 		
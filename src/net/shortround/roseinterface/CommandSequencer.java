@@ -0,0 +1,261 @@
+package net.shortround.roseinterface;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+import android.util.Log;
+
+public class CommandSequencer {
+	// Debugging
+	private static final String TAG = "CommandSequencer";
+	private static final boolean D = true;
+
+	// Extra lead given to sequences started without an explicit start time
+	private static final long START_LEAD_NANOS = 100000000L;
+
+	// Commands understood by the Rose
+	private static final String[] COMMANDS = { "data", "decay", "display", "revert" };
+
+	// Where commands are sent, returning false if the command couldn't be sent
+	public interface Transport {
+		boolean send(String command);
+	}
+
+	// Source of time, so playback can be driven by a virtual clock
+	public interface Clock {
+		long nanoTime();
+		void sleepUntil(long deadline) throws InterruptedException;
+	}
+
+	// Progress callbacks, delivered on the sequencer thread
+	public interface Listener {
+		void onStep(int index, Step step, long jitter);
+		void onFinished(Stats stats);
+	}
+
+	// Member fields
+	private final Transport transport;
+	private final Clock clock;
+	private Listener listener;
+	private Thread thread;
+	private volatile long linkLatency;
+
+	public CommandSequencer(Transport transport) {
+		this(transport, SYSTEM_CLOCK);
+	}
+
+	public CommandSequencer(Transport transport, Clock clock) {
+		this.transport = transport;
+		this.clock = clock;
+	}
+
+	public void setListener(Listener listener) {
+		this.listener = listener;
+	}
+
+	public long getLinkLatency() {
+		return linkLatency;
+	}
+
+	public void updateLinkLatency(long sample) {
+		// Smooth the one way latency so a single slow reply doesn't skew the schedule
+		long current = linkLatency;
+		linkLatency = current == 0 ? sample : (current * 7 + sample) / 8;
+		if (D) Log.d(TAG, "updateLinkLatency() " + sample + "ns -> " + linkLatency + "ns");
+	}
+
+	public synchronized void start(Script script) {
+		// Leave room to send the first steps early by the link latency
+		start(script, clock.nanoTime() + linkLatency + START_LEAD_NANOS);
+	}
+
+	public synchronized void start(final Script script, final long startTime) {
+		if (D) Log.d(TAG, "start");
+		stop();
+
+		thread = new Thread("SequencerThread") {
+			public void run() {
+				try {
+					play(script, startTime);
+				} catch (InterruptedException e) {
+					Log.i(TAG, "sequence stopped");
+				}
+			}
+		};
+		thread.setPriority(Thread.MAX_PRIORITY);
+		thread.start();
+	}
+
+	public synchronized void stop() {
+		if (thread != null) { thread.interrupt(); thread = null; }
+	}
+
+	// Steps are due at startTime + offset on the clock, and each one is sent early by
+	// the link latency measured at that point so it lands on schedule
+	public Stats play(Script script, long startTime) throws InterruptedException {
+		Stats stats = new Stats();
+
+		List<Step> steps = script.getSteps();
+		for (int i = 0; i < steps.size(); i++) {
+			Step step = steps.get(i);
+
+			long deadline = startTime + step.offset * 1000000L - linkLatency;
+			clock.sleepUntil(deadline);
+
+			// Steps that never went out don't count towards the timing
+			if (!transport.send(step.command)) {
+				Log.e(TAG, "step " + i + " (" + step.command + ") not sent");
+				stats.missed++;
+				continue;
+			}
+
+			// Measure once the send has finished, so a blocking write counts too
+			long jitter = clock.nanoTime() - deadline;
+			stats.add(jitter);
+
+			if (listener != null) listener.onStep(i, step, jitter);
+		}
+
+		if (D) Log.d(TAG, "finished: " + stats);
+		if (listener != null) listener.onFinished(stats);
+
+		return stats;
+	}
+
+	public static class Step {
+		public final long offset; // Milliseconds from the start of the script
+		public final String command;
+
+		public Step(long offset, String command) {
+			this.offset = offset;
+			this.command = command;
+		}
+	}
+
+	public static class Script {
+		private final List<Step> steps;
+
+		public Script(List<Step> steps) {
+			this.steps = steps;
+		}
+
+		public List<Step> getSteps() {
+			return steps;
+		}
+
+		// Lines look like "<offset in ms> <command>", blank lines and lines starting with # are skipped
+		public static Script parse(Reader reader) throws IOException, ParseException {
+			BufferedReader in = new BufferedReader(reader);
+			List<Step> steps = new ArrayList<Step>();
+			long lastOffset = 0;
+
+			String line;
+			int lineNumber = 0;
+			while ((line = in.readLine()) != null) {
+				lineNumber++;
+				line = line.trim();
+				if (line.length() == 0 || line.startsWith("#")) continue;
+
+				String[] parts = line.split("\\s+");
+				if (parts.length != 2) throw new ParseException("Expected \"<offset> <command>\" on line " + lineNumber, lineNumber);
+
+				long offset;
+				try {
+					offset = Long.parseLong(parts[0]);
+				} catch (NumberFormatException e) {
+					throw new ParseException("Invalid offset \"" + parts[0] + "\" on line " + lineNumber, lineNumber);
+				}
+				if (offset < lastOffset) throw new ParseException("Offset goes backwards on line " + lineNumber, lineNumber);
+
+				String command = parts[1].toLowerCase(Locale.US);
+				boolean known = false;
+				for (String c : COMMANDS) {
+					if (c.equals(command)) known = true;
+				}
+				if (!known) throw new ParseException("Unknown command \"" + parts[1] + "\" on line " + lineNumber, lineNumber);
+
+				steps.add(new Step(offset, command));
+				lastOffset = offset;
+			}
+
+			return new Script(Collections.unmodifiableList(steps));
+		}
+	}
+
+	public static class Stats {
+		private int count;
+		private int missed;
+		private long min = Long.MAX_VALUE;
+		private long max = Long.MIN_VALUE;
+		private double sum;
+		private double sumOfSquares;
+
+		private void add(long jitter) {
+			count++;
+			if (jitter < min) min = jitter;
+			if (jitter > max) max = jitter;
+			sum += jitter;
+			sumOfSquares += (double) jitter * jitter;
+		}
+
+		public int getCount() {
+			return count;
+		}
+
+		public int getMissed() {
+			return missed;
+		}
+
+		public long getMin() {
+			return count == 0 ? 0 : min;
+		}
+
+		public long getMax() {
+			return count == 0 ? 0 : max;
+		}
+
+		public double getMean() {
+			return count == 0 ? 0 : sum / count;
+		}
+
+		public double getStandardDeviation() {
+			if (count == 0) return 0;
+			double mean = getMean();
+			return Math.sqrt(Math.max(0, sumOfSquares / count - mean * mean));
+		}
+
+		@Override
+		public String toString() {
+			return String.format(Locale.US, "%d steps, %d missed, jitter mean %.3fms, sd %.3fms, min %.3fms, max %.3fms",
+					count, missed, getMean() / 1e6, getStandardDeviation() / 1e6, getMin() / 1e6, getMax() / 1e6);
+		}
+	}
+
+	public static final Clock SYSTEM_CLOCK = new Clock() {
+		// Stop sleeping this far ahead of a deadline and spin the rest of the way
+		private static final long SPIN_NANOS = 2000000L;
+
+		public long nanoTime() {
+			return System.nanoTime();
+		}
+
+		public void sleepUntil(long deadline) throws InterruptedException {
+			long remaining;
+			while ((remaining = deadline - System.nanoTime()) > SPIN_NANOS) {
+				long sleep = remaining - SPIN_NANOS;
+				Thread.sleep(sleep / 1000000L, (int) (sleep % 1000000L));
+			}
+
+			while (System.nanoTime() < deadline) {
+				if (Thread.interrupted()) throw new InterruptedException();
+				Thread.yield();
+			}
+		}
+	};
+}
@@ -0,0 +1,253 @@
+package net.shortround.roseinterface;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothSocket;
+import android.util.Log;
+
+public class ConnectionRacer {
+	// Debugging
+	private static final String TAG = "ConnectionRacer";
+	private static final boolean D = true;
+
+	// Delay between the start of one attempt and the next
+	private static final long STAGGER_MS = 500;
+
+	// Strategy constants
+	public static final int STRATEGY_NONE = -1;
+	public static final int STRATEGY_SECURE = 0;         // RFCOMM via SDP lookup, authenticated
+	public static final int STRATEGY_INSECURE = 1;       // RFCOMM via SDP lookup, unauthenticated
+	public static final int STRATEGY_CACHED_CHANNEL = 2; // RFCOMM straight to the last known channel
+
+	// Member fields
+	private final DeviceRegistry registry;
+	private final BluetoothDevice device;
+	private final List<Attempt> attempts = new ArrayList<Attempt>();
+	private Attempt winner;
+	private int failures;
+	private boolean cancelled;
+
+	public ConnectionRacer(DeviceRegistry registry, BluetoothDevice device) {
+		this.registry = registry;
+		this.device = device;
+	}
+
+	public synchronized int getWinningStrategy() {
+		return winner == null ? STRATEGY_NONE : winner.strategy;
+	}
+
+	public BluetoothSocket connect() throws IOException {
+		String address = device.getAddress();
+		int preferred = registry.getConnectStrategy(address);
+		int channel = registry.getRfcommChannel(address);
+
+		// Try the last SDP winner first, then the other SDP strategy
+		List<Integer> order = new ArrayList<Integer>();
+		if (preferred == STRATEGY_INSECURE) {
+			order.add(STRATEGY_INSECURE);
+			order.add(STRATEGY_SECURE);
+		} else {
+			order.add(STRATEGY_SECURE);
+			order.add(STRATEGY_INSECURE);
+		}
+
+		// The cached channel skips the SDP check for the Rose service, so it never
+		// goes first.  It only moves up to second place if it won last time.
+		if (channel > 0) order.add(preferred == STRATEGY_CACHED_CHANNEL ? 1 : order.size(), STRATEGY_CACHED_CHANNEL);
+
+		synchronized (this) {
+			if (cancelled) throw new IOException("Connection cancelled");
+
+			for (int i = 0; i < order.size(); i++) {
+				attempts.add(new Attempt(order.get(i), channel, i * STAGGER_MS));
+			}
+			for (Attempt attempt : attempts) {
+				attempt.start();
+			}
+
+			// Wait for a winner or for every attempt to fail
+			while (winner == null && !cancelled && failures < attempts.size()) {
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					cancel();
+					Thread.currentThread().interrupt();
+				}
+			}
+
+			if (winner == null) throw new IOException("All connection strategies failed");
+		}
+
+		if (D) Log.d(TAG, "strategy " + winner.strategy + " won for " + address);
+		remember(winner);
+
+		return winner.socket;
+	}
+
+	public synchronized void cancel() {
+		if (D) Log.d(TAG, "cancel");
+
+		cancelled = true;
+		for (Attempt attempt : attempts) {
+			attempt.cancel();
+		}
+		notifyAll();
+	}
+
+	private synchronized void won(Attempt attempt) {
+		if (winner != null || cancelled) {
+			// Someone else got there first, so drop this socket
+			attempt.cancel();
+			return;
+		}
+
+		winner = attempt;
+
+		// Stop the losers
+		for (Attempt other : attempts) {
+			if (other != attempt) other.cancel();
+		}
+		notifyAll();
+	}
+
+	private synchronized void failed(Attempt attempt) {
+		failures++;
+
+		// Don't make the next attempt wait out its stagger
+		int next = attempts.indexOf(attempt) + 1;
+		if (next < attempts.size()) attempts.get(next).go.countDown();
+
+		notifyAll();
+	}
+
+	private synchronized boolean isFinished() {
+		return winner != null || cancelled;
+	}
+
+	private void remember(Attempt attempt) {
+		String address = device.getAddress();
+		registry.setConnectStrategy(address, attempt.strategy);
+
+		// Only learn the channel from an SDP lookup, which checked for the Rose service
+		if (attempt.strategy != STRATEGY_CACHED_CHANNEL) {
+			int channel = readChannel(attempt.socket);
+			if (channel > 0) registry.setRfcommChannel(address, channel);
+		}
+	}
+
+	private BluetoothSocket createSocket(int strategy, int channel) throws IOException {
+		switch (strategy) {
+		case STRATEGY_SECURE:
+			return device.createRfcommSocketToServiceRecord(BluetoothService.ROSE_SERVICE_UUID);
+		case STRATEGY_INSECURE:
+			return device.createInsecureRfcommSocketToServiceRecord(BluetoothService.ROSE_SERVICE_UUID);
+		case STRATEGY_CACHED_CHANNEL:
+			// There is no public API for connecting to a channel directly
+			try {
+				Method method = device.getClass().getMethod("createRfcommSocket", int.class);
+				return (BluetoothSocket) method.invoke(device, channel);
+			} catch (Exception e) {
+				throw new IOException("createRfcommSocket() unavailable: " + e);
+			}
+		default:
+			throw new IOException("Unknown strategy " + strategy);
+		}
+	}
+
+	private static int readChannel(BluetoothSocket socket) {
+		// The channel is only kept in a private field of the socket
+		try {
+			Field field = BluetoothSocket.class.getDeclaredField("mPort");
+			field.setAccessible(true);
+			return field.getInt(socket);
+		} catch (Exception e) {
+			Log.e(TAG, "unable to read RFCOMM channel", e);
+			return -1;
+		}
+	}
+
+	private class Attempt extends Thread {
+		private final int strategy;
+		private final int channel;
+		private final long delay;
+		private final CountDownLatch go = new CountDownLatch(1);
+		private BluetoothSocket socket;
+		private boolean closed;
+
+		public Attempt(int strategy, int channel, long delay) {
+			this.strategy = strategy;
+			this.channel = channel;
+			this.delay = delay;
+		}
+
+		public void run() {
+			setName("ConnectAttempt-" + strategy);
+
+			try {
+				// Wait out the stagger unless an earlier attempt fails first
+				go.await(delay, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException e) {
+				failed(this);
+				return;
+			}
+
+			BluetoothSocket tmp;
+			try {
+				if (isFinished()) throw new IOException("Race already finished");
+				tmp = createSocket(strategy, channel);
+			} catch (IOException e) {
+				if (D) Log.d(TAG, "strategy " + strategy + " create() failed", e);
+				failed(this);
+				return;
+			}
+
+			// Don't keep the socket if we were cancelled while creating it
+			synchronized (this) {
+				if (!closed) socket = tmp;
+			}
+			if (socket == null) {
+				try {
+					tmp.close();
+				} catch (IOException e) {
+					Log.e(TAG, "close() of attempt socket failed", e);
+				}
+				failed(this);
+				return;
+			}
+
+			try {
+				socket.connect();
+			} catch (IOException e) {
+				if (D) Log.d(TAG, "strategy " + strategy + " connect() failed", e);
+				cancel();
+				failed(this);
+				return;
+			}
+
+			won(this);
+		}
+
+		public void cancel() {
+			BluetoothSocket tmp;
+			synchronized (this) {
+				closed = true;
+				tmp = socket;
+			}
+			go.countDown();
+
+			if (tmp == null) return;
+			try {
+				tmp.close();
+			} catch (IOException e) {
+				Log.e(TAG, "close() of attempt socket failed", e);
+			}
+		}
+	}
+}
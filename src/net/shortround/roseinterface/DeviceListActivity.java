@@ -1,5 +1,8 @@
 package net.shortround.roseinterface;
 
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 
 import android.app.Activity;
@@ -10,6 +13,7 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
 import android.os.Bundle;
+import android.os.Handler;
 import android.view.View;
 import android.view.Window;
 import android.view.View.OnClickListener;
@@ -18,7 +22,6 @@ import android.widget.AdapterView.OnItemClickListener;
 import android.widget.ArrayAdapter;
 import android.widget.Button;
 import android.widget.ListView;
-import android.widget.TextView;
 
 public class DeviceListActivity extends Activity {
 	// Debugging
@@ -30,8 +33,20 @@ public class DeviceListActivity extends Activity {
 	
 	// Member fields
 	private BluetoothAdapter bluetoothAdapter;
-	private ArrayAdapter<String> pairedDevicesArrayAdapter;
-	private ArrayAdapter<String> newDevicesArrayAdapter;
+	private ArrayAdapter<DeviceRegistry.Entry> pairedDevicesArrayAdapter;
+	private ArrayAdapter<DeviceRegistry.Entry> newDevicesArrayAdapter;
+	private DeviceRegistry deviceRegistry;
+	private DeviceProber deviceProber;
+	private final Handler handler = new Handler();
+	
+	// Discovery slows down connections, so it waits until probing is done
+	private boolean probing = false;
+	private boolean discoveryPending = false;
+	
+	// Addresses already shown in either list
+	private final Set<String> listedAddresses = new HashSet<String>();
+	// Discovered devices waiting to be added to the list
+	private final List<DeviceRegistry.Entry> pendingNewDevices = new ArrayList<DeviceRegistry.Entry>();
 	
 	@Override
 	protected void onCreate(Bundle savedInstanceState) {
@@ -53,10 +68,12 @@ public class DeviceListActivity extends Activity {
 			}
 		});
 		
-		// Initialize array adapters.  One for already paired devices and
-		// one for newly discovered devices.
-		pairedDevicesArrayAdapter = new ArrayAdapter<String>(this, R.layout.device_name);
-		newDevicesArrayAdapter = new ArrayAdapter<String>(this, R.layout.device_name);
+		// Initialize array adapters.  One for known Rose devices and
+		// one for newly discovered devices.  Both are updated in batches.
+		pairedDevicesArrayAdapter = new ArrayAdapter<DeviceRegistry.Entry>(this, R.layout.device_name);
+		pairedDevicesArrayAdapter.setNotifyOnChange(false);
+		newDevicesArrayAdapter = new ArrayAdapter<DeviceRegistry.Entry>(this, R.layout.device_name);
+		newDevicesArrayAdapter.setNotifyOnChange(false);
 		
 		// Find and set up the ListView for paired devices
 		ListView pairedListView = (ListView) findViewById(R.id.paired_devices);
@@ -79,29 +96,41 @@ public class DeviceListActivity extends Activity {
 		// Get the local Bluetooth adapter
 		bluetoothAdapter = BluetoothAdapter.getDefaultAdapter();
 		
-		// Get a set of currently paired devices
-		Set<BluetoothDevice> pairedDevices = bluetoothAdapter.getBondedDevices();
+		// Show the known Rose devices straight away
+		deviceRegistry = DeviceRegistry.getInstance(this);
+		findViewById(R.id.title_paired_devices).setVisibility(View.VISIBLE);
+		for (DeviceRegistry.Entry entry : deviceRegistry.getDevices()) {
+			if (listedAddresses.add(entry.address)) pairedDevicesArrayAdapter.add(entry);
+		}
+		pairedDevicesArrayAdapter.notifyDataSetChanged();
 		
-		// If there are paired devices, add each one to the ArrayAdapter
-		if (pairedDevices.size() > 0) {
-			findViewById(R.id.title_paired_devices).setVisibility(View.VISIBLE);
-			for (BluetoothDevice device : pairedDevices) {
-				pairedDevicesArrayAdapter.add(device.getName() + "\n" + device.getAddress());
-			}
-		} else {
-			String noDevices = getResources().getText(R.string.none_paired).toString();
-			pairedDevicesArrayAdapter.add(noDevices);
+		// Check the rest of the paired devices for the Rose service
+		List<BluetoothDevice> unknownDevices = new ArrayList<BluetoothDevice>();
+		for (BluetoothDevice device : bluetoothAdapter.getBondedDevices()) {
+			if (deviceRegistry.needsProbe(device.getAddress())) unknownDevices.add(device);
 		}
+		
+		// Make sure discovery isn't running while we probe
+		bluetoothAdapter.cancelDiscovery();
+		
+		probing = true;
+		setProgressBarIndeterminateVisibility(true);
+		deviceProber = new DeviceProber(handler, deviceRegistry, proberListener);
+		deviceProber.probe(unknownDevices);
 	}
 	
 	@Override
 	protected void onDestroy() {
 		super.onDestroy();
 		
-		// Make sure we're not doing discovery anymore
+		// Make sure we're not doing discovery or probing anymore
 		if (bluetoothAdapter != null) {
 			bluetoothAdapter.cancelDiscovery();
 		}
+		if (deviceProber != null) {
+			deviceProber.cancel();
+		}
+		handler.removeCallbacks(flushNewDevices);
 		
 		// Unregister broadcast listeners
 		this.unregisterReceiver(receiver);
@@ -115,6 +144,12 @@ public class DeviceListActivity extends Activity {
 		// Turn on sub-title for new devices
 		findViewById(R.id.title_new_devices).setVisibility(View.VISIBLE);
 		
+		// Wait for the probes to finish before discovering
+		if (probing) {
+			discoveryPending = true;
+			return;
+		}
+		
 		// If we're already discovering, stop it
 		if (bluetoothAdapter.isDiscovering()) {
 			bluetoothAdapter.cancelDiscovery();
@@ -124,14 +159,73 @@ public class DeviceListActivity extends Activity {
 		bluetoothAdapter.startDiscovery();
 	}
 	
+	private void addPlaceholder(ArrayAdapter<DeviceRegistry.Entry> arrayAdapter, int resId) {
+		DeviceRegistry.Entry placeholder = new DeviceRegistry.Entry(null);
+		placeholder.name = getResources().getText(resId).toString();
+		arrayAdapter.add(placeholder);
+		arrayAdapter.notifyDataSetChanged();
+	}
+	
+	// Discovered devices aren't probed, since connecting to an unpaired device would
+	// start pairing with it, so this list is labelled as unchecked
+	private void queueNewDevice(BluetoothDevice device) {
+		DeviceRegistry.Entry entry = new DeviceRegistry.Entry(device.getAddress());
+		entry.name = device.getName();
+		
+		// Hold the device back briefly so a burst of results lands in one update
+		if (pendingNewDevices.isEmpty()) handler.postDelayed(flushNewDevices, DeviceProber.BATCH_DELAY_MS);
+		pendingNewDevices.add(entry);
+	}
+	
+	private final Runnable flushNewDevices = new Runnable() {
+		public void run() {
+			for (DeviceRegistry.Entry entry : pendingNewDevices) {
+				newDevicesArrayAdapter.add(entry);
+			}
+			pendingNewDevices.clear();
+			newDevicesArrayAdapter.notifyDataSetChanged();
+		}
+	};
+	
+	private final DeviceProber.Listener proberListener = new DeviceProber.Listener() {
+		public void onDevicesFound(List<BluetoothDevice> devices) {
+			for (BluetoothDevice device : devices) {
+				if (listedAddresses.add(device.getAddress())) {
+					DeviceRegistry.Entry entry = new DeviceRegistry.Entry(device.getAddress());
+					entry.name = device.getName();
+					pairedDevicesArrayAdapter.add(entry);
+				}
+			}
+			pairedDevicesArrayAdapter.notifyDataSetChanged();
+		}
+		
+		public void onProbeFinished() {
+			probing = false;
+			
+			if (pairedDevicesArrayAdapter.getCount() == 0) {
+				addPlaceholder(pairedDevicesArrayAdapter, R.string.none_paired);
+			}
+			
+			// Start the discovery that was held back, if any
+			if (discoveryPending) {
+				discoveryPending = false;
+				doDiscovery();
+			} else if (!bluetoothAdapter.isDiscovering()) {
+				setProgressBarIndeterminateVisibility(false);
+			}
+		}
+	};
+	
 	private OnItemClickListener deviceClickListener = new OnItemClickListener() {
-		public void onItemClick(AdapterView<?> av, View v, int arg2, long arg3) {
-			// Cancel discovery because it's costly
-			bluetoothAdapter.cancelDiscovery();
+		public void onItemClick(AdapterView<?> av, View v, int position, long id) {
+			// Get the device MAC address, ignoring the placeholder rows
+			DeviceRegistry.Entry entry = (DeviceRegistry.Entry) av.getItemAtPosition(position);
+			String address = entry.address;
+			if (address == null) return;
 			
-			// Get the device MAC address
-			String info = ((TextView) v).getText().toString();
-			String address = info.substring(info.length() - 17);
+			// Cancel discovery and probing because they're costly
+			bluetoothAdapter.cancelDiscovery();
+			deviceProber.cancel();
 			
 			// Create the result Intent and include the MAC address
 			Intent intent = new Intent();
@@ -152,16 +246,31 @@ public class DeviceListActivity extends Activity {
 			if (BluetoothDevice.ACTION_FOUND.equals(action)) {
 				// Get the BluetoothDevice object from the Intent
 				BluetoothDevice device = intent.getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
-				// If it's already paired, skip it
-				if (device.getBondState() != BluetoothDevice.BOND_BONDED) {
-					newDevicesArrayAdapter.add(device.getName() + "\n" + device.getAddress());
+				
+				// Known Rose devices are already listed, just note that they're nearby
+				if (deviceRegistry.isRose(device.getAddress())) {
+					deviceRegistry.markSeen(device.getAddress(), device.getName());
+					return;
+				}
+				
+				// Skip devices that are already listed, and paired devices unless they
+				// were ruled out as a Rose, so the user can still pick one that was
+				// misjudged
+				boolean bonded = device.getBondState() == BluetoothDevice.BOND_BONDED;
+				if (bonded && !deviceRegistry.isNotRose(device.getAddress())) return;
+				if (listedAddresses.add(device.getAddress())) {
+					queueNewDevice(device);
 				}
 			} else if (BluetoothAdapter.ACTION_DISCOVERY_FINISHED.equals(action)) {
 				setProgressBarIndeterminateVisibility(false);
 				setTitle(R.string.select_device);
+				
+				// Flush anything still waiting
+				handler.removeCallbacks(flushNewDevices);
+				flushNewDevices.run();
+				
 				if (newDevicesArrayAdapter.getCount() == 0) {
-					String noDevices = getResources().getText(R.string.none_found).toString();
-					newDevicesArrayAdapter.add(noDevices);
+					addPlaceholder(newDevicesArrayAdapter, R.string.none_found);
 				}
 			}
 		}
@@ -0,0 +1,215 @@
+package net.shortround.roseinterface;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothSocket;
+import android.os.Handler;
+import android.util.Log;
+
+public class DeviceProber {
+	// Debugging
+	private static final String TAG = "DeviceProber";
+	private static final boolean D = true;
+
+	// Number of devices probed at the same time
+	private static final int MAX_CONCURRENT_PROBES = 2;
+	// How long found devices are held back so they reach the listener together
+	public static final long BATCH_DELAY_MS = 250;
+
+	// Probe outcomes
+	private static final int RESULT_ROSE = 0;
+	private static final int RESULT_NOT_ROSE = 1;
+	private static final int RESULT_UNKNOWN = 2;  // Device unreachable, busy or refused
+
+	// Error the Bluetooth stack reports when the SDP lookup finds no Rose service record
+	private static final String SERVICE_DISCOVERY_FAILED = "Service discovery failed";
+
+	// Callbacks, always delivered on the handler's thread
+	public interface Listener {
+		void onDevicesFound(List<BluetoothDevice> devices);
+		void onProbeFinished();
+	}
+
+	// Member fields
+	private final Handler handler;
+	private final DeviceRegistry registry;
+	private final Listener listener;
+	private final ExecutorService executor;
+	private final Set<String> probed = new HashSet<String>();
+	private final Set<BluetoothSocket> sockets = new HashSet<BluetoothSocket>();
+	private final List<BluetoothDevice> pending = new ArrayList<BluetoothDevice>();
+	private final AtomicInteger remaining = new AtomicInteger();
+	private boolean flushScheduled = false;
+	private boolean cancelled = false;
+
+	public DeviceProber(Handler handler, DeviceRegistry registry, Listener listener) {
+		this.handler = handler;
+		this.registry = registry;
+		this.listener = listener;
+
+		executor = Executors.newFixedThreadPool(MAX_CONCURRENT_PROBES, new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger();
+
+			public Thread newThread(Runnable r) {
+				return new Thread(r, "ProbeThread-" + count.incrementAndGet());
+			}
+		});
+	}
+
+	public synchronized void probe(Collection<BluetoothDevice> devices) {
+		if (cancelled) return;
+
+		int queued = 0;
+		for (final BluetoothDevice device : devices) {
+			// Skip devices we have already probed
+			if (!probed.add(device.getAddress())) continue;
+
+			queued++;
+			remaining.incrementAndGet();
+			executor.execute(new Runnable() {
+				public void run() {
+					probeDevice(device);
+					if (remaining.decrementAndGet() == 0) finished();
+				}
+			});
+		}
+
+		// Nothing new to probe, so report completion straight away
+		if (queued == 0 && remaining.get() == 0) finished();
+	}
+
+	public void cancel() {
+		if (D) Log.d(TAG, "cancel");
+
+		synchronized (this) {
+			cancelled = true;
+
+			// Unblock any probes stuck in connect()
+			for (BluetoothSocket socket : sockets) {
+				try {
+					socket.close();
+				} catch (IOException e) {
+					Log.e(TAG, "close() of probe socket failed", e);
+				}
+			}
+			sockets.clear();
+		}
+
+		executor.shutdownNow();
+		handler.removeCallbacks(flush);
+	}
+
+	private void probeDevice(BluetoothDevice device) {
+		if (D) Log.d(TAG, "probing " + device.getAddress());
+
+		// Connecting to the service record only succeeds if the SDP lookup
+		// finds the Rose service on the device
+		BluetoothSocket socket;
+		try {
+			socket = device.createRfcommSocketToServiceRecord(BluetoothService.ROSE_SERVICE_UUID);
+		} catch (IOException e) {
+			Log.e(TAG, "create() failed", e);
+			return;
+		}
+
+		synchronized (this) {
+			if (cancelled) return;
+			sockets.add(socket);
+		}
+
+		// Only a failed service lookup says anything about the device.  Page timeouts,
+		// "Host is down" or a refused connection just mean it couldn't be reached.
+		int result;
+		try {
+			socket.connect();
+			result = RESULT_ROSE;
+		} catch (IOException e) {
+			String message = e.getMessage();
+			result = message != null && message.contains(SERVICE_DISCOVERY_FAILED) ? RESULT_NOT_ROSE : RESULT_UNKNOWN;
+			if (D) Log.d(TAG, "probe of " + device.getAddress() + " failed: " + message);
+		}
+
+		synchronized (this) {
+			sockets.remove(socket);
+		}
+
+		try {
+			socket.close();
+		} catch (IOException e) {
+			Log.e(TAG, "close() of probe socket failed", e);
+		}
+
+		// A cancelled probe had its socket closed under it, so the result means nothing
+		synchronized (this) {
+			if (cancelled) return;
+		}
+
+		// Record definite results so devices without the service aren't probed every
+		// time, and leave unreachable devices to be probed again next time
+		switch (result) {
+		case RESULT_ROSE:
+			if (D) Log.d(TAG, device.getAddress() + " is a Rose");
+			registry.markSeen(device.getAddress(), device.getName());
+			found(device);
+			break;
+		case RESULT_NOT_ROSE:
+			if (D) Log.d(TAG, device.getAddress() + " is not a Rose");
+			registry.markNotRose(device.getAddress(), device.getName());
+			break;
+		default:
+			if (D) Log.d(TAG, device.getAddress() + " could not be reached");
+			break;
+		}
+	}
+
+	private synchronized void found(BluetoothDevice device) {
+		if (cancelled) return;
+
+		pending.add(device);
+		if (!flushScheduled) {
+			flushScheduled = true;
+			handler.postDelayed(flush, BATCH_DELAY_MS);
+		}
+	}
+
+	private void finished() {
+		handler.post(new Runnable() {
+			public void run() {
+				// Deliver whatever is still waiting before reporting completion
+				handler.removeCallbacks(flush);
+				flush.run();
+
+				synchronized (DeviceProber.this) {
+					if (cancelled) return;
+				}
+				listener.onProbeFinished();
+			}
+		});
+	}
+
+	private final Runnable flush = new Runnable() {
+		public void run() {
+			List<BluetoothDevice> devices;
+
+			synchronized (DeviceProber.this) {
+				flushScheduled = false;
+				if (cancelled || pending.isEmpty()) return;
+
+				devices = new ArrayList<BluetoothDevice>(pending);
+				pending.clear();
+			}
+
+			listener.onDevicesFound(devices);
+		}
+	};
+}
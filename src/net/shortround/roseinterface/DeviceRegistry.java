@@ -0,0 +1,231 @@
+package net.shortround.roseinterface;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+public class DeviceRegistry {
+	// Debugging
+	private static final String TAG = "DeviceRegistry";
+	private static final boolean D = true;
+
+	// Preference file and keys
+	private static final String PREFS_NAME = "device_registry";
+	private static final String KEY_DEVICES = "devices";
+
+	// Latency value for devices that have never been connected to
+	public static final long LATENCY_UNKNOWN = -1;
+
+	// How long a device that failed the Rose probe is left alone before it's probed again
+	private static final long PROBE_RETRY_MS = 7 * 24 * 60 * 60 * 1000L;
+
+	// Shared instance, so every screen sees the same entries
+	private static DeviceRegistry instance;
+
+	// Member fields
+	private final SharedPreferences preferences;
+	private final Map<String, Entry> entries = new LinkedHashMap<String, Entry>();
+
+	public static class Entry {
+		public final String address;
+		public String name;
+		public long lastSeen;
+		public long lastConnectLatency = LATENCY_UNKNOWN;
+		public boolean rose = true;
+		public long lastProbed;
+		public int connectStrategy = ConnectionRacer.STRATEGY_NONE;
+		public int rfcommChannel = -1;
+
+		public Entry(String address) {
+			this.address = address;
+		}
+
+		@Override
+		public String toString() {
+			if (address == null) return name;
+			return (name != null ? name : address) + "\n" + address;
+		}
+	}
+
+	public static synchronized DeviceRegistry getInstance(Context context) {
+		if (instance == null) instance = new DeviceRegistry(context.getApplicationContext());
+		return instance;
+	}
+
+	private DeviceRegistry(Context context) {
+		preferences = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+		load();
+	}
+
+	public synchronized boolean isRose(String address) {
+		Entry entry = entries.get(address);
+		return entry != null && entry.rose;
+	}
+
+	public synchronized boolean isNotRose(String address) {
+		Entry entry = entries.get(address);
+		return entry != null && !entry.rose;
+	}
+
+	public synchronized boolean needsProbe(String address) {
+		Entry entry = entries.get(address);
+		if (entry == null) return true;
+
+		// Devices without the Rose service are only checked again once in a while
+		return !entry.rose && System.currentTimeMillis() - entry.lastProbed > PROBE_RETRY_MS;
+	}
+
+	public synchronized List<Entry> getDevices() {
+		List<Entry> devices = new ArrayList<Entry>();
+		for (Entry entry : entries.values()) {
+			if (entry.rose) devices.add(entry);
+		}
+
+		// Most recently seen first
+		Collections.sort(devices, new Comparator<Entry>() {
+			public int compare(Entry lhs, Entry rhs) {
+				return lhs.lastSeen < rhs.lastSeen ? 1 : (lhs.lastSeen > rhs.lastSeen ? -1 : 0);
+			}
+		});
+
+		return devices;
+	}
+
+	public synchronized void markSeen(String address, String name) {
+		if (D) Log.d(TAG, "markSeen() " + address);
+
+		Entry entry = getOrCreate(address);
+		if (name != null) entry.name = name;
+		entry.rose = true;
+		entry.lastSeen = System.currentTimeMillis();
+
+		save();
+	}
+
+	public synchronized void markNotRose(String address, String name) {
+		if (D) Log.d(TAG, "markNotRose() " + address);
+
+		Entry entry = getOrCreate(address);
+		if (name != null) entry.name = name;
+		entry.rose = false;
+		entry.lastProbed = System.currentTimeMillis();
+
+		save();
+	}
+
+	public synchronized void markConnected(String address, String name, long latency) {
+		if (D) Log.d(TAG, "markConnected() " + address + " in " + latency + "ms");
+
+		Entry entry = getOrCreate(address);
+		if (name != null) entry.name = name;
+		entry.rose = true;
+		entry.lastSeen = System.currentTimeMillis();
+		entry.lastConnectLatency = latency;
+
+		save();
+	}
+
+	public synchronized int getConnectStrategy(String address) {
+		Entry entry = entries.get(address);
+		return entry == null ? ConnectionRacer.STRATEGY_NONE : entry.connectStrategy;
+	}
+
+	public synchronized int getRfcommChannel(String address) {
+		Entry entry = entries.get(address);
+		return entry == null ? -1 : entry.rfcommChannel;
+	}
+
+	public synchronized void setConnectStrategy(String address, int strategy) {
+		if (D) Log.d(TAG, "setConnectStrategy() " + address + " " + strategy);
+
+		Entry entry = getOrCreate(address);
+		entry.connectStrategy = strategy;
+
+		save();
+	}
+
+	public synchronized void setRfcommChannel(String address, int channel) {
+		if (D) Log.d(TAG, "setRfcommChannel() " + address + " " + channel);
+
+		Entry entry = getOrCreate(address);
+		entry.rfcommChannel = channel;
+
+		// Without a channel there is nothing for the cached channel strategy to use
+		if (channel < 0 && entry.connectStrategy == ConnectionRacer.STRATEGY_CACHED_CHANNEL) {
+			entry.connectStrategy = ConnectionRacer.STRATEGY_NONE;
+		}
+
+		save();
+	}
+
+	private Entry getOrCreate(String address) {
+		Entry entry = entries.get(address);
+		if (entry == null) {
+			entry = new Entry(address);
+			entries.put(address, entry);
+		}
+
+		return entry;
+	}
+
+	private void load() {
+		String data = preferences.getString(KEY_DEVICES, null);
+		if (data == null) return;
+
+		try {
+			JSONArray array = new JSONArray(data);
+			for (int i = 0; i < array.length(); i++) {
+				JSONObject json = array.getJSONObject(i);
+
+				Entry entry = new Entry(json.getString("address"));
+				entry.name = json.optString("name", null);
+				entry.lastSeen = json.optLong("last_seen", 0);
+				entry.lastConnectLatency = json.optLong("last_connect_latency", LATENCY_UNKNOWN);
+				entry.rose = json.optBoolean("rose", true);
+				entry.lastProbed = json.optLong("last_probed", 0);
+				entry.connectStrategy = json.optInt("connect_strategy", ConnectionRacer.STRATEGY_NONE);
+				entry.rfcommChannel = json.optInt("rfcomm_channel", -1);
+
+				entries.put(entry.address, entry);
+			}
+		} catch (JSONException e) {
+			Log.e(TAG, "Failed to load device registry", e);
+		}
+	}
+
+	private void save() {
+		JSONArray array = new JSONArray();
+
+		try {
+			for (Entry entry : entries.values()) {
+				JSONObject json = new JSONObject();
+				json.put("address", entry.address);
+				if (entry.name != null) json.put("name", entry.name);
+				json.put("last_seen", entry.lastSeen);
+				json.put("last_connect_latency", entry.lastConnectLatency);
+				json.put("rose", entry.rose);
+				json.put("last_probed", entry.lastProbed);
+				json.put("connect_strategy", entry.connectStrategy);
+				json.put("rfcomm_channel", entry.rfcommChannel);
+
+				array.put(json);
+			}
+		} catch (JSONException e) {
+			Log.e(TAG, "Failed to save device registry", e);
+			return;
+		}
+
+		preferences.edit().putString(KEY_DEVICES, array.toString()).apply();
+	}
+}
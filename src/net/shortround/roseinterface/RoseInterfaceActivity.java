@@ -1,5 +1,10 @@
 package net.shortround.roseinterface;
 
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.text.ParseException;
+
 import org.json.JSONException;
 import org.json.JSONObject;
 
@@ -8,8 +13,11 @@ import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
 import android.content.Intent;
 import android.os.Bundle;
+import android.os.Environment;
 import android.os.Handler;
 import android.os.Message;
+import android.os.SystemClock;
+import android.text.format.DateUtils;
 import android.util.Log;
 import android.view.KeyEvent;
 import android.view.Menu;
@@ -19,6 +27,7 @@ import android.view.View;
 import android.view.View.OnClickListener;
 import android.widget.Button;
 import android.widget.TextView;
+import android.widget.Toast;
 import android.widget.ToggleButton;
 
 public class RoseInterfaceActivity extends Activity {
@@ -35,6 +44,11 @@ public class RoseInterfaceActivity extends Activity {
 	public static final int MESSAGE_READ = 3;
 	public static final int MESSAGE_STATE_CHANGE = 4;
 	public static final int MESSAGE_WRITE = 5;
+	public static final int MESSAGE_DEVICE_ADDRESS = 6;
+	public static final int MESSAGE_SEQUENCE_FINISHED = 7;
+	
+	// Location of the command sequence, relative to external storage
+	private static final String SEQUENCE_FILE = "RoseInterface/sequence.txt";
 	
 	// Layout Views
 	private TextView batteryTextView;
@@ -48,6 +62,25 @@ public class RoseInterfaceActivity extends Activity {
 	private BluetoothAdapter bluetoothAdapter = null;
 	// Member object for the bluetooth service
 	private BluetoothService bluetoothService = null;
+	// Persisted last device and status snapshot
+	private StatusCache statusCache = null;
+	// Persisted list of known Rose devices
+	private DeviceRegistry deviceRegistry = null;
+	// Plays scripted command sequences
+	private CommandSequencer commandSequencer = null;
+	// When the last "data" request was sent, for link latency sampling
+	private long dataRequestTime = 0;
+	// Address of the connected device and whether it was reached on a cached
+	// RFCOMM channel that hasn't returned a valid status yet
+	private String connectedAddress = null;
+	// Address of the device being connected to, whose cached status may be shown
+	private String targetAddress = null;
+	private boolean channelUnverified = false;
+	
+	// Startup timing
+	private long createTime;
+	private boolean staleStatusShown = false;
+	private boolean freshStatusShown = false;
 	
     /*** View Lifecycle ***/
 	
@@ -60,7 +93,10 @@ public class RoseInterfaceActivity extends Activity {
     		break;
     	case REQUEST_ENABLE_BT:
     		if (resultCode == Activity.RESULT_OK) {
-    			if (bluetoothService == null) setupBluetoothService();
+    			if (bluetoothService == null) {
+    				setupBluetoothService();
+    				connectLastDevice();
+    			}
     		} else {
     			Log.e(TAG, "Bluetooth not enabled");
     			finish();
@@ -76,6 +112,7 @@ public class RoseInterfaceActivity extends Activity {
     @Override
     public void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
+        createTime = SystemClock.elapsedRealtime();
        
         // Set up the layout
         setContentView(R.layout.main);
@@ -89,6 +126,20 @@ public class RoseInterfaceActivity extends Activity {
         	finish();
         	return;
         }
+        
+        // If Bluetooth is already on, start connecting to the last device
+        // while the rest of the UI is set up
+        statusCache = new StatusCache(this);
+        targetAddress = statusCache.getDeviceAddress();
+        deviceRegistry = DeviceRegistry.getInstance(this);
+        if (bluetoothAdapter.isEnabled()) {
+        	setupBluetoothService();
+        	connectLastDevice();
+        }
+        
+        // Set up the views and show the last known status until fresh data arrives
+        setupViews();
+        prepareFieldsForState();
     }
     
     @Override
@@ -101,6 +152,10 @@ public class RoseInterfaceActivity extends Activity {
     @Override
     public void onDestroy() {
     	super.onDestroy();
+    	
+    	// Stop any running sequence and the bluetooth service
+    	if (commandSequencer != null) commandSequencer.stop();
+    	if (bluetoothService != null) bluetoothService.stop();
     }
     
     @Override
@@ -120,6 +175,9 @@ public class RoseInterfaceActivity extends Activity {
     		serverIntent = new Intent(this, DeviceListActivity.class);
     		startActivityForResult(serverIntent, REQUEST_CONNECT_DEVICE);
     		return true;
+    	case R.id.run_sequence:
+    		runSequence();
+    		return true;
     	}
     	
     	return false;
@@ -150,7 +208,7 @@ public class RoseInterfaceActivity extends Activity {
     	super.onStart();
     	
     	// Request bluetooth 
-    	if (bluetoothAdapter.isEnabled()) {
+    	if (!bluetoothAdapter.isEnabled()) {
     		Intent enableIntent = new Intent(BluetoothAdapter.ACTION_REQUEST_ENABLE);
     		startActivityForResult(enableIntent, REQUEST_ENABLE_BT);
     	} else {
@@ -165,9 +223,18 @@ public class RoseInterfaceActivity extends Activity {
     
     /*** Bluetooth Methods ***/
     
+    private void connectLastDevice() {
+    	String address = targetAddress;
+    	if (address == null || !BluetoothAdapter.checkBluetoothAddress(address)) return;
+    	
+    	Log.d(TAG, "Connecting to last device: " + address);
+    	bluetoothService.connect(bluetoothAdapter.getRemoteDevice(address));
+    }
+    
     private void connectDevice(Intent data) {
     	// Get the device MAC address
     	String address = data.getExtras().getString(DeviceListActivity.EXTRA_DEVICE_ADDRESS);
+    	targetAddress = address;
     	// Get the BluetoothDevice object
     	BluetoothDevice device = bluetoothAdapter.getRemoteDevice(address);
     	// Attempt to connect to the device
@@ -182,9 +249,11 @@ public class RoseInterfaceActivity extends Activity {
     	refreshButton.setEnabled(false);
     	revertButton.setEnabled(false);
     	
-    	// Clear text fields
-    	batteryTextView.setText("Battery: --");
-    	decayTextView.setText("Decay: --");
+    	// Fall back to the last known status, or clear the text fields
+    	if (!showCachedStatus()) {
+    		batteryTextView.setText("Battery: --");
+    		decayTextView.setText("Decay: --");
+    	}
     	
     	// Set the title
     	setTitle(getString(R.string.app_name) + " - " + message);
@@ -211,6 +280,11 @@ public class RoseInterfaceActivity extends Activity {
     	public void handleMessage(Message message) {
     		switch (message.what) {
     		case MESSAGE_FAILURE:
+    			// Don't keep playing a sequence into a dead link
+    			if (commandSequencer != null) commandSequencer.stop();
+    			
+    			// A cached channel that never answered with a status is suspect
+    			if (channelUnverified) forgetCachedChannel();
     			break;
     		case MESSAGE_GET_DATA:
     			break;
@@ -220,10 +294,21 @@ public class RoseInterfaceActivity extends Activity {
     			parseData(readMessage);
     			break;
     		case MESSAGE_STATE_CHANGE:
+    			if (message.arg1 != BluetoothService.STATE_CONNECTED && commandSequencer != null) commandSequencer.stop();
     			prepareFieldsForState();
     			break;
     		case MESSAGE_WRITE:
     			break;
+    		case MESSAGE_SEQUENCE_FINISHED:
+    			Toast.makeText(RoseInterfaceActivity.this, message.obj.toString(), Toast.LENGTH_LONG).show();
+    			break;
+    		case MESSAGE_DEVICE_ADDRESS:
+    			String address = (String) message.obj;
+    			statusCache.setDeviceAddress(address);
+    			deviceRegistry.markConnected(address, bluetoothAdapter.getRemoteDevice(address).getName(), message.arg1);
+    			connectedAddress = address;
+    			channelUnverified = message.arg2 == ConnectionRacer.STRATEGY_CACHED_CHANNEL;
+    			break;
     		}
     	}
     };
@@ -252,16 +337,64 @@ public class RoseInterfaceActivity extends Activity {
     private void parseData(String data) {
     	Log.d(TAG, "Receiving data: " + data);
     	
+    	// Half the round trip of a "data" request approximates the link latency
+    	if (dataRequestTime != 0) {
+    		commandSequencer.updateLinkLatency((System.nanoTime() - dataRequestTime) / 2);
+    		dataRequestTime = 0;
+    	}
+    	
     	try {
-    		JSONObject json = new JSONObject(data);
-    		
-    		batteryTextView.setText("Battery: " + json.getInt("battery") + "%");
-    		decayTextView.setText("Decay: " + json.getInt("decay") + "/" + json.getInt("max_decay"));
+    		showStatus(new JSONObject(data), false);
     		
-    		displayButton.setChecked(json.getBoolean("display"));
+    		// Remember the snapshot for the next launch
+    		statusCache.setStatus(connectedAddress, data);
+    		channelUnverified = false;
     	} catch (JSONException e) {
     		Log.d(TAG, "Failed to parse data", e);
+    		
+    		// Whatever is on the cached channel might not be a Rose
+    		if (channelUnverified) forgetCachedChannel();
+    	}
+    }
+    
+    private void forgetCachedChannel() {
+    	Log.w(TAG, "Cached RFCOMM channel gave no valid status, forgetting it");
+    	deviceRegistry.setRfcommChannel(connectedAddress, -1);
+    	channelUnverified = false;
+    }
+    
+    private boolean showCachedStatus() {
+    	String data = statusCache.getStatus(targetAddress);
+    	if (data == null) return false;
+    	
+    	try {
+    		showStatus(new JSONObject(data), true);
+    		return true;
+    	} catch (JSONException e) {
+    		Log.d(TAG, "Failed to parse cached data", e);
+    		return false;
+    	}
+    }
+    
+    private void showStatus(JSONObject json, boolean stale) throws JSONException {
+    	// Say how old a stale snapshot is
+    	String suffix = "";
+    	if (stale) {
+    		CharSequence age = DateUtils.getRelativeTimeSpanString(statusCache.getStatusTime());
+    		suffix = " " + getString(R.string.stale, age);
     	}
+    	
+    	batteryTextView.setText("Battery: " + json.getInt("battery") + "%" + suffix);
+    	decayTextView.setText("Decay: " + json.getInt("decay") + "/" + json.getInt("max_decay") + suffix);
+    	
+    	displayButton.setChecked(json.getBoolean("display"));
+    	
+    	// Track how long it took from launch to the first status of each kind
+    	if (stale ? !staleStatusShown : !freshStatusShown) {
+    		Log.i(TAG, "Time to first " + (stale ? "stale" : "fresh") + " status: "
+    				+ (SystemClock.elapsedRealtime() - createTime) + "ms");
+    	}
+    	if (stale) staleStatusShown = true; else freshStatusShown = true;
     }
     
     private void sendMessage(String message) {
@@ -273,6 +406,9 @@ public class RoseInterfaceActivity extends Activity {
     		return;
     	}
     	
+    	// Note the time of data requests so the reply can be timed
+    	if (message.equals("data")) dataRequestTime = System.nanoTime();
+    	
     	// Check that there's something to send
     	if (message.length() > 0) {
     		// Get the message as bytes
@@ -281,7 +417,58 @@ public class RoseInterfaceActivity extends Activity {
     	}
     }
     
+    private void runSequence() {
+    	if (bluetoothService == null || bluetoothService.getState() != BluetoothService.STATE_CONNECTED) {
+    		Toast.makeText(this, R.string.not_connected, Toast.LENGTH_SHORT).show();
+    		return;
+    	}
+    	
+    	// Load the script
+    	File file = new File(Environment.getExternalStorageDirectory(), SEQUENCE_FILE);
+    	CommandSequencer.Script script;
+    	try {
+    		FileReader reader = new FileReader(file);
+    		try {
+    			script = CommandSequencer.Script.parse(reader);
+    		} finally {
+    			reader.close();
+    		}
+    	} catch (IOException e) {
+    		Log.e(TAG, "Failed to read sequence " + file, e);
+    		Toast.makeText(this, getString(R.string.sequence_missing, file.getPath()), Toast.LENGTH_LONG).show();
+    		return;
+    	} catch (ParseException e) {
+    		Log.e(TAG, "Failed to parse sequence " + file, e);
+    		Toast.makeText(this, e.getMessage(), Toast.LENGTH_LONG).show();
+    		return;
+    	}
+    	
+    	commandSequencer.start(script);
+    }
+    
     private void setupBluetoothService() {
+    	// Initialize the bluetooth service
+    	bluetoothService = new BluetoothService(this, handler);
+    	
+    	// Initialize the sequencer, sending straight to the service from its own thread
+    	commandSequencer = new CommandSequencer(new CommandSequencer.Transport() {
+    		public boolean send(String command) {
+    			return bluetoothService.write(command.getBytes());
+    		}
+    	});
+    	commandSequencer.setListener(new CommandSequencer.Listener() {
+    		public void onStep(int index, CommandSequencer.Step step, long jitter) {
+    			Log.d(TAG, "Sequence step " + index + " (" + step.command + ") jitter: " + jitter + "ns");
+    		}
+    		
+    		public void onFinished(CommandSequencer.Stats stats) {
+    			Log.i(TAG, "Sequence finished: " + stats);
+    			handler.obtainMessage(MESSAGE_SEQUENCE_FINISHED, stats).sendToTarget();
+    		}
+    	});
+    }
+    
+    private void setupViews() {
     	// Set up buttons
     	decayButton = (Button) findViewById(R.id.decay);
     	decayButton.setOnClickListener(new OnClickListener() {
@@ -314,8 +501,5 @@ public class RoseInterfaceActivity extends Activity {
     	// Link up labels
     	batteryTextView = (TextView) findViewById(R.id.batteryStatus);
     	decayTextView = (TextView) findViewById(R.id.decayStatus);
-    	
-    	// Initialize the bluetooth service
-    	bluetoothService = new BluetoothService(this, handler);
     }
 }
\ No newline at end of file
@@ -0,0 +1,55 @@
+package net.shortround.roseinterface;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+public class StatusCache {
+	// Debugging
+	private static final String TAG = "StatusCache";
+	private static final boolean D = true;
+
+	// Preference file and keys
+	private static final String PREFS_NAME = "status_cache";
+	private static final String KEY_DEVICE_ADDRESS = "device_address";
+	private static final String KEY_STATUS = "status";
+	private static final String KEY_STATUS_ADDRESS = "status_address";
+	private static final String KEY_STATUS_TIME = "status_time";
+
+	// Member fields
+	private final SharedPreferences preferences;
+
+	public StatusCache(Context context) {
+		preferences = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+	}
+
+	public String getDeviceAddress() {
+		return preferences.getString(KEY_DEVICE_ADDRESS, null);
+	}
+
+	public void setDeviceAddress(String address) {
+		if (D) Log.d(TAG, "setDeviceAddress() " + address);
+		preferences.edit().putString(KEY_DEVICE_ADDRESS, address).apply();
+	}
+
+	public String getStatus(String address) {
+		// The snapshot only describes the device that sent it
+		if (address == null || !address.equals(preferences.getString(KEY_STATUS_ADDRESS, null))) return null;
+		return preferences.getString(KEY_STATUS, null);
+	}
+
+	public long getStatusTime() {
+		return preferences.getLong(KEY_STATUS_TIME, 0);
+	}
+
+	public void setStatus(String address, String status) {
+		if (D) Log.d(TAG, "setStatus() " + address + " " + status);
+
+		// Write in the background so the UI thread never waits on disk
+		preferences.edit()
+			.putString(KEY_STATUS_ADDRESS, address)
+			.putString(KEY_STATUS, status)
+			.putLong(KEY_STATUS_TIME, System.currentTimeMillis())
+			.apply();
+	}
+}
@@ -0,0 +1,180 @@
+package net.shortround.roseinterface.test;
+
+import java.io.StringReader;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import junit.framework.TestCase;
+import net.shortround.roseinterface.CommandSequencer;
+
+public class CommandSequencerTest extends TestCase {
+	private static final long MS = 1000000L;
+
+	// Clock that jumps straight to each deadline, optionally overshooting it
+	private static class VirtualClock implements CommandSequencer.Clock {
+		long now;
+		long overshoot;
+
+		public long nanoTime() {
+			return now;
+		}
+
+		public void sleepUntil(long deadline) {
+			if (deadline > now) now = deadline;
+			now += overshoot;
+		}
+	}
+
+	// Transport that records each command and when it was sent
+	private static class RecordingTransport implements CommandSequencer.Transport {
+		final VirtualClock clock;
+		final List<String> commands = new ArrayList<String>();
+		final List<Long> times = new ArrayList<Long>();
+		boolean connected = true;
+		int disconnectAfter = Integer.MAX_VALUE; // Drop the link after this many sends
+		long sendDuration;                       // How long each send blocks
+		Runnable afterSend;                      // Runs after each successful send
+
+		RecordingTransport(VirtualClock clock) {
+			this.clock = clock;
+		}
+
+		public boolean send(String command) {
+			if (!connected) return false;
+
+			commands.add(command);
+			times.add(clock.now);
+			clock.now += sendDuration;
+
+			if (commands.size() >= disconnectAfter) connected = false;
+			if (afterSend != null) afterSend.run();
+			return true;
+		}
+	}
+
+	private VirtualClock clock;
+	private RecordingTransport transport;
+	private CommandSequencer sequencer;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+
+		clock = new VirtualClock();
+		transport = new RecordingTransport(clock);
+		sequencer = new CommandSequencer(transport, clock);
+	}
+
+	private static CommandSequencer.Script parse(String text) throws Exception {
+		return CommandSequencer.Script.parse(new StringReader(text));
+	}
+
+	public void testStepsLandOnSchedule() throws Exception {
+		sequencer.updateLinkLatency(20 * MS);
+
+		long start = 1000 * MS;
+		sequencer.play(parse("# show\n0 decay\n500 display\n\n1500 revert\n"), start);
+
+		assertEquals(3, transport.commands.size());
+		assertEquals("decay", transport.commands.get(0));
+		assertEquals("display", transport.commands.get(1));
+		assertEquals("revert", transport.commands.get(2));
+
+		// Each command is sent one link latency early so it arrives at its offset
+		long[] offsets = { 0, 500, 1500 };
+		for (int i = 0; i < offsets.length; i++) {
+			assertEquals(start + offsets[i] * MS, transport.times.get(i) + 20 * MS);
+		}
+	}
+
+	public void testLatencyChangesApplyDuringPlayback() throws Exception {
+		sequencer.updateLinkLatency(20 * MS);
+
+		// Simulate a new latency measurement arriving after the first step
+		transport.afterSend = new Runnable() {
+			public void run() {
+				if (transport.commands.size() == 1) sequencer.updateLinkLatency(100 * MS);
+			}
+		};
+
+		long start = 1000 * MS;
+		sequencer.play(parse("0 decay\n500 revert\n"), start);
+
+		long latency = sequencer.getLinkLatency();
+		assertEquals(30 * MS, latency);
+		assertEquals(start - 20 * MS, (long) transport.times.get(0));
+		assertEquals(start + 500 * MS - latency, (long) transport.times.get(1));
+	}
+
+	public void testJitterStats() throws Exception {
+		clock.overshoot = 2 * MS;
+
+		CommandSequencer.Stats stats = sequencer.play(parse("0 decay\n100 display\n200 revert\n"), 1000 * MS);
+
+		assertEquals(3, stats.getCount());
+		assertEquals(2 * MS, stats.getMin());
+		assertEquals(2 * MS, stats.getMax());
+		assertEquals(2.0 * MS, stats.getMean(), 0.001);
+		assertEquals(0.0, stats.getStandardDeviation(), 0.001);
+	}
+
+	public void testJitterIncludesSendTime() throws Exception {
+		clock.overshoot = 1 * MS;
+		transport.sendDuration = 3 * MS;
+
+		CommandSequencer.Stats stats = sequencer.play(parse("0 decay\n100 display\n"), 1000 * MS);
+
+		assertEquals(2, stats.getCount());
+		assertEquals(4 * MS, stats.getMin());
+		assertEquals(4 * MS, stats.getMax());
+	}
+
+	public void testUnsentStepsAreLeftOutOfStats() throws Exception {
+		clock.overshoot = 1 * MS;
+
+		// Drop the link after the first step
+		transport.disconnectAfter = 1;
+
+		CommandSequencer.Stats stats = sequencer.play(parse("0 decay\n100 display\n200 revert\n"), 1000 * MS);
+
+		assertEquals(1, transport.commands.size());
+		assertEquals(1, stats.getCount());
+		assertEquals(2, stats.getMissed());
+		assertEquals(1 * MS, stats.getMax());
+	}
+
+	public void testLateStartSendsImmediately() throws Exception {
+		clock.now = 5000 * MS;
+
+		CommandSequencer.Stats stats = sequencer.play(parse("0 decay\n"), 1000 * MS);
+
+		assertEquals(1, transport.commands.size());
+		assertEquals(5000 * MS, (long) transport.times.get(0));
+		assertEquals(4000 * MS, stats.getMax());
+	}
+
+	public void testParseIgnoresDefaultLocale() throws Exception {
+		Locale defaultLocale = Locale.getDefault();
+		Locale.setDefault(new Locale("tr", "TR"));
+		try {
+			CommandSequencer.Script script = parse("0 DISPLAY\n");
+			assertEquals("display", script.getSteps().get(0).command);
+		} finally {
+			Locale.setDefault(defaultLocale);
+		}
+	}
+
+	public void testParseRejectsBadScripts() throws Exception {
+		String[] scripts = { "0 dance\n", "100 decay\n50 revert\n", "soon decay\n", "0\n" };
+		for (String script : scripts) {
+			try {
+				parse(script);
+				fail("Expected a ParseException for \"" + script + "\"");
+			} catch (ParseException e) {
+				// Expected
+			}
+		}
+	}
+}